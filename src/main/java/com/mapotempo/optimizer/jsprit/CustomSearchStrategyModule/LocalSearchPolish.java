@@ -0,0 +1,622 @@
+/***
+ * Copyright © Mapotempo, 2016
+ *
+ * This file is part of Mapotempo.
+ *
+ * Mapotempo is free software. You can redistribute it and/or
+ * modify since you respect the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Mapotempo is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the Licenses for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Mapotempo. If not, see:
+ * <http://www.gnu.org/licenses/agpl.html>
+***/
+package com.mapotempo.optimizer.jsprit.CustomSearchStrategyModule;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.graphhopper.jsprit.core.algorithm.SearchStrategyModule;
+import com.graphhopper.jsprit.core.algorithm.listener.SearchStrategyModuleListener;
+import com.graphhopper.jsprit.core.algorithm.recreate.listener.JobInsertedListener;
+import com.graphhopper.jsprit.core.algorithm.ruin.listener.RuinListener;
+import com.graphhopper.jsprit.core.algorithm.state.InternalStates;
+import com.graphhopper.jsprit.core.algorithm.state.StateManager;
+import com.graphhopper.jsprit.core.problem.Capacity;
+import com.graphhopper.jsprit.core.problem.constraint.ConstraintManager;
+import com.graphhopper.jsprit.core.problem.constraint.HardActivityConstraint;
+import com.graphhopper.jsprit.core.problem.constraint.HardActivityConstraint.ConstraintsStatus;
+import com.graphhopper.jsprit.core.problem.job.Break;
+import com.graphhopper.jsprit.core.problem.job.Job;
+import com.graphhopper.jsprit.core.problem.job.Service;
+import com.graphhopper.jsprit.core.problem.misc.JobInsertionContext;
+import com.graphhopper.jsprit.core.problem.solution.VehicleRoutingProblemSolution;
+import com.graphhopper.jsprit.core.problem.solution.route.VehicleRoute;
+import com.graphhopper.jsprit.core.problem.solution.route.activity.DeliverService;
+import com.graphhopper.jsprit.core.problem.solution.route.activity.TourActivities;
+import com.graphhopper.jsprit.core.problem.solution.route.activity.TourActivity;
+import com.graphhopper.jsprit.core.problem.solution.route.activity.TourActivity.JobActivity;
+import com.graphhopper.jsprit.core.problem.vehicle.Vehicle;
+import com.graphhopper.jsprit.core.problem.vehicle.VehicleTypeImpl.VehicleCostParams;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local search applying 2-opt, Or-opt and inter-route relocate moves until no improving move is left.
+ *
+ * <p>Candidate moves are screened on primitive arrays of matrix indices with the loaded time and
+ * distance matrices, one row per route, only the rows of the changed routes being refreshed after a move.
+ * Reordered activities getting new neighbours are checked against the given order constraints only:
+ * the load and time window constraints of the {@link ConstraintManager} read the states of the current
+ * order and would reject valid reorders. Relocated jobs are checked against all its hard route and
+ * activity constraints, after a capacity pre-check on the route loads. The move is then applied, only
+ * the changed range of the tour being rebuilt, the states are recalculated and the move is kept if time
+ * windows, capacities and the vehicle latest arrival are respected and the route costs from the
+ * {@link StateManager} decreased.
+ *
+ * <p>Each run stops after a maximum number of moves or at the deadline set with
+ * {@link #setDeadline(long)}, whichever comes first.
+ *
+ * <p>Only routes made of services are changed, routes holding shipments or breaks are left as is.
+ */
+public class LocalSearchPolish implements SearchStrategyModule {
+
+    private static Logger log = LoggerFactory.getLogger(LocalSearchPolish.class);
+
+    private static final double EPSILON = 1e-6;
+
+    private static final int OR_OPT_MAX_SEGMENT = 3;
+
+    private final StateManager stateManager;
+
+    private final ConstraintManager constraintManager;
+
+    private final Collection<HardActivityConstraint> orderConstraints;
+
+    private final float[][] timeMatrix;
+
+    private final float[][] distanceMatrix;
+
+    private final boolean minMax;
+
+    private final int maxMoves;
+
+    private long deadline = Long.MAX_VALUE;
+
+    private final Collection<RuinListener> ruinListeners = new ArrayList<RuinListener>();
+
+    private final Collection<JobInsertedListener> insertedListeners = new ArrayList<JobInsertedListener>();
+
+    private int routeCount;
+
+    private VehicleRoute[] routes = new VehicleRoute[0];
+
+    private boolean[] eligible = new boolean[0];
+
+    private int[] sizes = new int[0];
+
+    private double[] perDistance = new double[0];
+
+    private double[] perTime = new double[0];
+
+    private int[][] locations = new int[0][];
+
+    private TourActivity[][] activities = new TourActivity[0][];
+
+    private TourActivity[] candidate = new TourActivity[0];
+
+    private double[] forward = new double[0];
+
+    private double[] backward = new double[0];
+
+    /**
+     * Constructs the local search.
+     *
+     * @param stateManager state manager holding the route states
+     * @param constraintManager hard constraints checked on relocated jobs
+     * @param orderConstraints hard activity constraints on the order of the activities, checked on reordered activities
+     * @param timeMatrix loaded time matrix, may be null
+     * @param distanceMatrix loaded distance matrix, may be null
+     * @param minMax true if the cost of the most expensive route must not increase
+     * @param maxMoves maximum number of moves applied by each run
+     */
+    public LocalSearchPolish(StateManager stateManager, ConstraintManager constraintManager, Collection<HardActivityConstraint> orderConstraints,
+            float[][] timeMatrix, float[][] distanceMatrix, boolean minMax, int maxMoves) {
+        this.stateManager = stateManager;
+        this.constraintManager = constraintManager;
+        this.orderConstraints = orderConstraints;
+        this.timeMatrix = timeMatrix;
+        this.distanceMatrix = distanceMatrix;
+        this.minMax = minMax;
+        this.maxMoves = maxMoves;
+        log.debug("initialise " + this);
+    }
+
+    @Override
+    public VehicleRoutingProblemSolution runAndGetSolution(VehicleRoutingProblemSolution solution) {
+        for (VehicleRoute route : solution.getRoutes()) {
+            stateManager.reCalculateStates(route);
+        }
+        load(solution.getRoutes());
+        int moves = 0;
+        while (moves < maxMoves && !isExpired() && improve()) {
+            ++moves;
+        }
+        log.debug("moves applied: " + moves);
+        return solution;
+    }
+
+    /**
+     * Sets the time, in milliseconds since the epoch, after which no further move is searched.
+     *
+     * @param deadline the deadline, Long.MAX_VALUE for none
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    @Override
+    public String getName() {
+        return "localSearchPolish";
+    }
+
+    @Override
+    public void addModuleListener(SearchStrategyModuleListener moduleListener) {
+        if (moduleListener instanceof RuinListener) {
+            ruinListeners.add((RuinListener) moduleListener);
+        }
+        if (moduleListener instanceof JobInsertedListener) {
+            insertedListeners.add((JobInsertedListener) moduleListener);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[name=localSearchPolish][minMax=" + minMax + "][maxMoves=" + maxMoves + "]";
+    }
+
+    private boolean isExpired() {
+        return System.currentTimeMillis() >= deadline;
+    }
+
+    private boolean improve() {
+        for (int r = 0; r < routeCount; ++r) {
+            if (isExpired()) {
+                return false;
+            }
+            if (eligible[r] && (twoOpt(r) || orOpt(r))) {
+                return true;
+            }
+        }
+        return relocate();
+    }
+
+    /**
+     * Reverses the activities between positions i and j.
+     */
+    private boolean twoOpt(int r) {
+        int n = sizes[r];
+        int[] loc = locations[r];
+        TourActivity[] acts = activities[r];
+        double perD = perDistance[r];
+        double perT = perTime[r];
+        forward[0] = 0.;
+        backward[0] = 0.;
+        for (int k = 0; k <= n; ++k) {
+            forward[k + 1] = forward[k] + cost(loc[k], loc[k + 1], perD, perT);
+            backward[k + 1] = backward[k] + cost(loc[k + 1], loc[k], perD, perT);
+        }
+        for (int i = 1; i < n; ++i) {
+            int before = loc[i - 1];
+            int first = loc[i];
+            for (int j = i + 1; j <= n; ++j) {
+                int last = loc[j];
+                int after = loc[j + 1];
+                double delta = cost(before, last, perD, perT) + (backward[j] - backward[i]) + cost(first, after, perD, perT)
+                        - cost(before, first, perD, perT) - (forward[j] - forward[i]) - cost(last, after, perD, perT);
+                if (delta < -EPSILON) {
+                    int c = 0;
+                    for (int k = 1; k < i; ++k) {
+                        candidate[c++] = acts[k];
+                    }
+                    for (int k = j; k >= i; --k) {
+                        candidate[c++] = acts[k];
+                    }
+                    for (int k = j + 1; k <= n; ++k) {
+                        candidate[c++] = acts[k];
+                    }
+                    if (tryReorder(r, n)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the segment of activities between positions i and e after the activity at position p.
+     */
+    private boolean orOpt(int r) {
+        int n = sizes[r];
+        int[] loc = locations[r];
+        double perD = perDistance[r];
+        double perT = perTime[r];
+        for (int length = 1; length <= OR_OPT_MAX_SEGMENT && length < n; ++length) {
+            for (int i = 1; i + length - 1 <= n; ++i) {
+                int e = i + length - 1;
+                int before = loc[i - 1];
+                int first = loc[i];
+                int last = loc[e];
+                int after = loc[e + 1];
+                double removal = cost(before, first, perD, perT) + cost(last, after, perD, perT) - cost(before, after, perD, perT);
+                for (int p = 0; p <= n; ++p) {
+                    if (p >= i - 1 && p <= e) {
+                        continue;
+                    }
+                    int from = loc[p];
+                    int to = loc[p + 1];
+                    double delta = cost(from, first, perD, perT) + cost(last, to, perD, perT) - cost(from, to, perD, perT) - removal;
+                    if (delta < -EPSILON) {
+                        int c = 0;
+                        if (p < i) {
+                            c = copy(r, 1, p, c);
+                            c = copy(r, i, e, c);
+                            c = copy(r, p + 1, i - 1, c);
+                            c = copy(r, e + 1, n, c);
+                        } else {
+                            c = copy(r, 1, i - 1, c);
+                            c = copy(r, e + 1, p, c);
+                            c = copy(r, i, e, c);
+                            c = copy(r, p + 1, n, c);
+                        }
+                        if (tryReorder(r, n)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the activity at position i of route a after the activity at position q of route b.
+     */
+    private boolean relocate() {
+        for (int a = 0; a < routeCount; ++a) {
+            if (isExpired()) {
+                return false;
+            }
+            if (!eligible[a]) {
+                continue;
+            }
+            int nA = sizes[a];
+            if (nA < 2) {
+                continue;
+            }
+            int[] locA = locations[a];
+            for (int i = 1; i <= nA; ++i) {
+                int before = locA[i - 1];
+                int moved = locA[i];
+                int after = locA[i + 1];
+                double removal = cost(before, moved, perDistance[a], perTime[a]) + cost(moved, after, perDistance[a], perTime[a])
+                        - cost(before, after, perDistance[a], perTime[a]);
+                for (int b = 0; b < routeCount; ++b) {
+                    if (b == a || !eligible[b] || !fitsCapacity(a, i, b)) {
+                        continue;
+                    }
+                    int nB = sizes[b];
+                    int[] locB = locations[b];
+                    // Built for the first improving position only, then shared by the other positions of route b
+                    JobInsertionContext iFacts = null;
+                    for (int q = 0; q <= nB; ++q) {
+                        int from = locB[q];
+                        int to = locB[q + 1];
+                        double delta = cost(from, moved, perDistance[b], perTime[b]) + cost(moved, to, perDistance[b], perTime[b])
+                                - cost(from, to, perDistance[b], perTime[b]) - removal;
+                        if (delta >= -EPSILON) {
+                            continue;
+                        }
+                        if (iFacts == null) {
+                            iFacts = relocationContext(a, i, b);
+                            if (iFacts == null) {
+                                break;
+                            }
+                        }
+                        if (tryRelocate(a, i, b, q, iFacts)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private int copy(int r, int from, int to, int c) {
+        TourActivity[] acts = activities[r];
+        for (int k = from; k <= to; ++k) {
+            candidate[c++] = acts[k];
+        }
+        return c;
+    }
+
+    private boolean tryReorder(int r, int n) {
+        VehicleRoute route = routes[r];
+        TourActivity[] acts = activities[r];
+        int lo = 0;
+        while (lo < n && candidate[lo] == acts[lo + 1]) {
+            ++lo;
+        }
+        int hi = n - 1;
+        while (hi > lo && candidate[hi] == acts[hi + 1]) {
+            --hi;
+        }
+        if (!isOrderFulfilled(r, n, lo, hi)) {
+            return false;
+        }
+
+        double oldCost = routeCost(route);
+        reorder(route.getTourActivities(), candidate, 0, lo, hi);
+        stateManager.reCalculateStates(route);
+        if (isFeasible(route) && routeCost(route) < oldCost - EPSILON) {
+            for (int k = lo; k <= hi; ++k) {
+                informInserted(((JobActivity) candidate[k]).getJob(), route);
+            }
+            loadRoute(r);
+            return true;
+        }
+        reorder(route.getTourActivities(), acts, 1, lo, hi);
+        stateManager.reCalculateStates(route);
+        return false;
+    }
+
+    /**
+     * Checks the order constraints of each activity getting new neighbours in the candidate order, the
+     * capacities and time windows being checked on the recalculated states.
+     */
+    private boolean isOrderFulfilled(int r, int n, int lo, int hi) {
+        if (orderConstraints.isEmpty()) {
+            return true;
+        }
+        VehicleRoute route = routes[r];
+        TourActivity[] acts = activities[r];
+        JobInsertionContext iFacts = new JobInsertionContext(route, ((JobActivity) candidate[lo]).getJob(), route.getVehicle(), route.getDriver(), route.getDepartureTime());
+        int from = Math.max(0, lo - 1);
+        int to = Math.min(n - 1, hi + 1);
+        for (int k = from; k <= to; ++k) {
+            TourActivity prevAct = k == 0 ? acts[0] : candidate[k - 1];
+            TourActivity act = candidate[k];
+            TourActivity nextAct = k == n - 1 ? acts[n + 1] : candidate[k + 1];
+            for (HardActivityConstraint constraint : orderConstraints) {
+                if (constraint.fulfilled(iFacts, prevAct, act, nextAct, prevAct.getEndTime()) != ConstraintsStatus.FULFILLED) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the context of moving the activity at position i of route a into route b, null if a hard route constraint forbids it.
+     */
+    private JobInsertionContext relocationContext(int a, int i, int b) {
+        VehicleRoute routeB = routes[b];
+        TourActivity act = activities[a][i];
+        JobInsertionContext iFacts = new JobInsertionContext(routeB, ((JobActivity) act).getJob(), routeB.getVehicle(), routeB.getDriver(), routeB.getDepartureTime());
+        iFacts.getAssociatedActivities().add(act);
+        return constraintManager.fulfilled(iFacts) ? iFacts : null;
+    }
+
+    private boolean tryRelocate(int a, int i, int b, int q, JobInsertionContext iFacts) {
+        VehicleRoute routeA = routes[a];
+        VehicleRoute routeB = routes[b];
+        TourActivity act = activities[a][i];
+        Job job = ((JobActivity) act).getJob();
+        TourActivity prevAct = activities[b][q];
+        TourActivity nextAct = activities[b][q + 1];
+        if (constraintManager.fulfilled(iFacts, prevAct, act, nextAct, prevAct.getEndTime()) != ConstraintsStatus.FULFILLED) {
+            return false;
+        }
+
+        double oldA = routeCost(routeA) + fix(routeA);
+        double oldB = routeCost(routeB) + fix(routeB);
+        routeA.getTourActivities().removeActivity(act);
+        routeB.getTourActivities().addActivity(q, act);
+        stateManager.reCalculateStates(routeA);
+        stateManager.reCalculateStates(routeB);
+        double newA = routeCost(routeA) + fix(routeA);
+        double newB = routeCost(routeB) + fix(routeB);
+        if (isFeasible(routeA) && isFeasible(routeB) && isImprovement(oldA, oldB, newA, newB)) {
+            for (RuinListener listener : ruinListeners) {
+                listener.removed(job, routeA);
+            }
+            informInserted(job, routeB);
+            loadRoute(a);
+            loadRoute(b);
+            return true;
+        }
+        routeB.getTourActivities().removeActivity(act);
+        routeA.getTourActivities().addActivity(i - 1, act);
+        stateManager.reCalculateStates(routeA);
+        stateManager.reCalculateStates(routeB);
+        return false;
+    }
+
+    /**
+     * Capacity pre-check of moving the activity at position i of route a into route b, a delivery adds to the load at the beginning of the route and other services to the load at its end.
+     */
+    private boolean fitsCapacity(int a, int i, int b) {
+        VehicleRoute route = routes[b];
+        TourActivity act = activities[a][i];
+        Job job = ((JobActivity) act).getJob();
+        Capacity load = stateManager.getRouteState(route, act instanceof DeliverService ? InternalStates.LOAD_AT_BEGINNING : InternalStates.LOAD_AT_END, Capacity.class);
+        if (load == null) {
+            return true;
+        }
+        Capacity capacity = route.getVehicle().getType().getCapacityDimensions();
+        Capacity size = job.getSize();
+        for (int d = 0; d < size.getNuOfDimensions(); ++d) {
+            if (load.get(d) + size.get(d) > capacity.get(d)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isImprovement(double oldA, double oldB, double newA, double newB) {
+        if (newA + newB >= oldA + oldB - EPSILON) {
+            return false;
+        }
+        return !minMax || Math.max(newA, newB) <= Math.max(oldA, oldB);
+    }
+
+    private boolean isFeasible(VehicleRoute route) {
+        Vehicle vehicle = route.getVehicle();
+        Capacity capacity = vehicle.getType().getCapacityDimensions();
+        Capacity loadAtBeginning = stateManager.getRouteState(route, InternalStates.LOAD_AT_BEGINNING, Capacity.class);
+        if (loadAtBeginning != null && !loadAtBeginning.isLessOrEqual(capacity)) {
+            return false;
+        }
+        for (TourActivity act : route.getActivities()) {
+            if (act.getArrTime() > act.getTheoreticalLatestOperationStartTime()) {
+                return false;
+            }
+            Capacity load = stateManager.getActivityState(act, InternalStates.LOAD, Capacity.class);
+            if (load != null && !load.isLessOrEqual(capacity)) {
+                return false;
+            }
+        }
+        return route.getEnd().getArrTime() <= vehicle.getLatestArrival();
+    }
+
+    private void informInserted(Job job, VehicleRoute route) {
+        for (JobInsertedListener listener : insertedListeners) {
+            listener.informJobInserted(job, route, 0., 0.);
+        }
+    }
+
+    private double routeCost(VehicleRoute route) {
+        Double cost = stateManager.getRouteState(route, InternalStates.COSTS, Double.class);
+        return cost != null ? cost : 0.;
+    }
+
+    private double fix(VehicleRoute route) {
+        return route.getVehicle().getType().getVehicleCostParams().fix;
+    }
+
+    private double cost(int from, int to, double perD, double perT) {
+        if (from < 0 || to < 0) {
+            return 0.;
+        }
+        double c = 0.;
+        if (distanceMatrix != null) {
+            c += perD * distanceMatrix[from][to];
+        }
+        if (timeMatrix != null) {
+            c += perT * timeMatrix[from][to];
+        }
+        return c;
+    }
+
+    /**
+     * Puts the activities between positions lo and hi of the given order back into the tour, the other
+     * positions being unchanged. TourActivities has no bulk setter, so each removal copies the activity list:
+     * only the changed range is touched to keep this at O((hi - lo) n) per applied or reverted move.
+     */
+    private static void reorder(TourActivities tour, TourActivity[] order, int from, int lo, int hi) {
+        for (int k = lo; k <= hi; ++k) {
+            tour.removeActivity(order[from + k]);
+        }
+        for (int k = lo; k <= hi; ++k) {
+            tour.addActivity(k, order[from + k]);
+        }
+    }
+
+    /**
+     * Loads each route in its row of the primitive buffers, position 0 and n + 1 of a row holding the start and end of the route.
+     */
+    private void load(Collection<VehicleRoute> solutionRoutes) {
+        routeCount = solutionRoutes.size();
+        if (routes.length < routeCount) {
+            routes = new VehicleRoute[routeCount];
+            eligible = new boolean[routeCount];
+            sizes = new int[routeCount];
+            perDistance = new double[routeCount];
+            perTime = new double[routeCount];
+            locations = new int[routeCount][];
+            activities = new TourActivity[routeCount][];
+        }
+        int r = 0;
+        for (VehicleRoute route : solutionRoutes) {
+            routes[r] = route;
+            VehicleCostParams costParams = route.getVehicle().getType().getVehicleCostParams();
+            perDistance[r] = costParams.perDistanceUnit;
+            perTime[r] = costParams.perTransportTimeUnit;
+            loadRoute(r);
+            ++r;
+        }
+    }
+
+    private void loadRoute(int r) {
+        VehicleRoute route = routes[r];
+        List<TourActivity> routeActivities = route.getActivities();
+        int n = routeActivities.size();
+        sizes[r] = n;
+        if (locations[r] == null || locations[r].length < n + 2) {
+            // Room for relocated activities
+            locations[r] = new int[n + 3];
+            activities[r] = new TourActivity[n + 3];
+        }
+        if (candidate.length < n + 3) {
+            candidate = new TourActivity[n + 3];
+            forward = new double[n + 3];
+            backward = new double[n + 3];
+        }
+        int[] loc = locations[r];
+        TourActivity[] acts = activities[r];
+        boolean routeEligible = true;
+        acts[0] = route.getStart();
+        loc[0] = matrixIndex(route.getStart());
+        routeEligible &= loc[0] >= 0;
+        for (int k = 0; k < n; ++k) {
+            TourActivity act = routeActivities.get(k);
+            acts[k + 1] = act;
+            loc[k + 1] = matrixIndex(act);
+            routeEligible &= loc[k + 1] >= 0 && isMovable(act);
+        }
+        acts[n + 1] = route.getEnd();
+        if (route.getVehicle().isReturnToDepot()) {
+            loc[n + 1] = matrixIndex(route.getEnd());
+            routeEligible &= loc[n + 1] >= 0;
+        } else {
+            loc[n + 1] = -1;
+        }
+        for (int k = n + 2; k < acts.length; ++k) {
+            acts[k] = null;
+        }
+        eligible[r] = routeEligible && n > 0;
+    }
+
+    private int matrixIndex(TourActivity act) {
+        int index = act.getLocation().getIndex();
+        int size = timeMatrix != null ? timeMatrix.length : distanceMatrix.length;
+        return index < size ? index : -1;
+    }
+
+    private static boolean isMovable(TourActivity act) {
+        if (!(act instanceof JobActivity)) {
+            return false;
+        }
+        Job job = ((JobActivity) act).getJob();
+        return job instanceof Service && !(job instanceof Break);
+    }
+}
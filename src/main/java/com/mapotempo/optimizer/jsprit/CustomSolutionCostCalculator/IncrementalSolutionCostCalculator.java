@@ -0,0 +1,443 @@
+/***
+ * Copyright © Mapotempo, 2016
+ *
+ * This file is part of Mapotempo.
+ *
+ * Mapotempo is free software. You can redistribute it and/or
+ * modify since you respect the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Mapotempo is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the Licenses for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Mapotempo. If not, see:
+ * <http://www.gnu.org/licenses/agpl.html>
+***/
+package com.mapotempo.optimizer.jsprit.CustomSolutionCostCalculator;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.graphhopper.jsprit.core.algorithm.SearchStrategy;
+import com.graphhopper.jsprit.core.algorithm.VehicleRoutingAlgorithm;
+import com.graphhopper.jsprit.core.algorithm.listener.AlgorithmStartsListener;
+import com.graphhopper.jsprit.core.algorithm.listener.IterationEndsListener;
+import com.graphhopper.jsprit.core.algorithm.listener.IterationStartsListener;
+import com.graphhopper.jsprit.core.algorithm.recreate.listener.JobInsertedListener;
+import com.graphhopper.jsprit.core.algorithm.ruin.listener.RuinListener;
+import com.graphhopper.jsprit.core.algorithm.selector.SelectBest;
+import com.graphhopper.jsprit.core.algorithm.state.InternalStates;
+import com.graphhopper.jsprit.core.algorithm.state.StateManager;
+import com.graphhopper.jsprit.core.problem.VehicleRoutingProblem;
+import com.graphhopper.jsprit.core.problem.job.Job;
+import com.graphhopper.jsprit.core.problem.solution.SolutionCostCalculator;
+import com.graphhopper.jsprit.core.problem.solution.VehicleRoutingProblemSolution;
+import com.graphhopper.jsprit.core.problem.solution.route.VehicleRoute;
+import com.graphhopper.jsprit.core.problem.vehicle.Vehicle;
+
+/**
+ * Solution cost calculator caching the cost of each route, indexed by vehicle.
+ *
+ * <p>The cache holds the route costs of one solution. Routes changed since are flagged by
+ * the module events ({@link #removed(Job, VehicleRoute)} and
+ * {@link #informJobInserted(Job, VehicleRoute, double, double)}), and only those are looked
+ * up again in the {@link StateManager}: checking a route is a flag test, whatever its length.
+ * {@code BreakScheduling} moves the breaks at the end of every ruin, so the routes of
+ * the vehicles having a break are flagged there.
+ *
+ * <p>The flags are only meaningful if the evaluated solution derives from the cached one.
+ * When every search strategy selects the best solution of the memory, the solution the next
+ * iteration starts from is known, and the cache is restored from a snapshot taken when this
+ * solution was accepted. Otherwise, or for a solution of unknown origin, all routes are
+ * looked up again, as a plain calculator would.
+ *
+ * <p>For the min-max objective the route costs are kept in an indexed max-heap
+ * so only changed routes need to be re-sifted.
+ *
+ * <p>It has to be registered as an algorithm listener.
+ */
+public class IncrementalSolutionCostCalculator implements SolutionCostCalculator, RuinListener, JobInsertedListener,
+        AlgorithmStartsListener, IterationStartsListener, IterationEndsListener {
+
+    private static class Snapshot {
+
+        private double[] routeCosts;
+
+        private boolean[] present;
+
+        private int presentCount;
+
+        private int[] heap;
+
+        private int[] heapPosition;
+
+        private int heapSize;
+    }
+
+    private final StateManager stateManager;
+
+    private final boolean minMax;
+
+    private final int[] breakVehicles;
+
+    private final SelectBest selectBest = new SelectBest();
+
+    private final Map<VehicleRoutingProblemSolution, Snapshot> snapshots = new IdentityHashMap<VehicleRoutingProblemSolution, Snapshot>();
+
+    private final ArrayDeque<Snapshot> freeSnapshots = new ArrayDeque<Snapshot>();
+
+    private boolean selectsBest = false;
+
+    private VehicleRoutingProblemSolution cached = null;
+
+    private boolean expectingChild = false;
+
+    private int generation = 0;
+
+    private boolean[] dirty;
+
+    private int[] dirtyVehicles;
+
+    private int dirtyCount = 0;
+
+    private int[] seen;
+
+    private double[] routeCosts;
+
+    private boolean[] present;
+
+    private int presentCount = 0;
+
+    private int[] heap;
+
+    private int[] heapPosition;
+
+    private int heapSize = 0;
+
+    /**
+     * Constructs the calculator.
+     *
+     * @param problem the problem, used to size the caches and find the vehicles having a break
+     * @param stateManager state manager holding the route costs
+     * @param minMax true to return the cost of the most expensive route instead of the sum of all routes
+     */
+    public IncrementalSolutionCostCalculator(VehicleRoutingProblem problem, StateManager stateManager, boolean minMax) {
+        this(problem, stateManager, minMax, problem.getVehicles().size() + 1);
+    }
+
+    IncrementalSolutionCostCalculator(VehicleRoutingProblem problem, StateManager stateManager, boolean minMax, int initialCapacity) {
+        this.stateManager = stateManager;
+        this.minMax = minMax;
+        int breakCount = 0;
+        int[] withBreak = new int[problem.getVehicles().size()];
+        for (Vehicle vehicle : problem.getVehicles()) {
+            if (vehicle.getBreak() != null) {
+                withBreak[breakCount++] = vehicle.getIndex();
+            }
+        }
+        this.breakVehicles = Arrays.copyOf(withBreak, breakCount);
+        allocate(initialCapacity);
+    }
+
+    @Override
+    public double getCosts(VehicleRoutingProblemSolution solution) {
+        if (solution != cached) {
+            Snapshot snapshot = snapshots.get(solution);
+            if (snapshot != null) {
+                restore(solution, snapshot);
+            } else if (!expectingChild) {
+                invalidate();
+            }
+        }
+        expectingChild = false;
+
+        ++generation;
+        int seenCount = 0;
+        double c = 0;
+        for (VehicleRoute route : solution.getRoutes()) {
+            int vehicleIndex = route.getVehicle().getIndex();
+            ensureCapacity(vehicleIndex + 1);
+            if (dirty[vehicleIndex] || !present[vehicleIndex]) {
+                update(route, vehicleIndex);
+            }
+            seen[vehicleIndex] = generation;
+            ++seenCount;
+            c += routeCosts[vehicleIndex];
+        }
+        if (seenCount != presentCount) {
+            evictUnseen();
+        }
+        for (int i = 0; i < dirtyCount; ++i) {
+            dirty[dirtyVehicles[i]] = false;
+        }
+        dirtyCount = 0;
+
+        cached = solution;
+        Snapshot snapshot = snapshots.get(solution);
+        if (snapshot != null) {
+            save(snapshot);
+        }
+
+        if (minMax) {
+            c = heapSize > 0 ? Math.max(0., routeCosts[heap[0]]) : 0.;
+        }
+        c += solution.getUnassignedJobs().size() * (1 + c) * 0.5;
+        return c;
+    }
+
+    @Override
+    public void informAlgorithmStarts(VehicleRoutingProblem problem, VehicleRoutingAlgorithm algorithm, Collection<VehicleRoutingProblemSolution> solutions) {
+        selectsBest = true;
+        for (SearchStrategy strategy : algorithm.getSearchStrategyManager().getStrategies()) {
+            if (!(strategy.getSolutionSelector() instanceof SelectBest)) {
+                selectsBest = false;
+            }
+        }
+    }
+
+    @Override
+    public void informIterationStarts(int i, VehicleRoutingProblem problem, Collection<VehicleRoutingProblemSolution> solutions) {
+        keepSnapshots(solutions);
+        VehicleRoutingProblemSolution parent = selectsBest ? selectBest.selectSolution(solutions) : null;
+        if (parent == null) {
+            invalidate();
+        } else if (parent != cached) {
+            Snapshot snapshot = snapshots.get(parent);
+            if (snapshot != null) {
+                restore(parent, snapshot);
+            } else {
+                invalidate();
+            }
+        }
+        expectingChild = parent != null;
+    }
+
+    @Override
+    public void informIterationEnds(int i, VehicleRoutingProblem problem, Collection<VehicleRoutingProblemSolution> solutions) {
+        expectingChild = false;
+        keepSnapshots(solutions);
+    }
+
+    @Override
+    public void ruinStarts(Collection<VehicleRoute> routes) {
+    }
+
+    @Override
+    public void ruinEnds(Collection<VehicleRoute> routes, Collection<Job> unassignedJobs) {
+        for (int vehicleIndex : breakVehicles) {
+            markDirty(vehicleIndex);
+        }
+    }
+
+    @Override
+    public void removed(Job job, VehicleRoute fromRoute) {
+        markDirty(fromRoute.getVehicle().getIndex());
+    }
+
+    @Override
+    public void informJobInserted(Job job2insert, VehicleRoute inRoute, double additionalCosts, double additionalTime) {
+        markDirty(inRoute.getVehicle().getIndex());
+    }
+
+    @Override
+    public String toString() {
+        return "[name=IncrementalSolutionCostCalculator][minMax=" + minMax + "]";
+    }
+
+    private void markDirty(int vehicleIndex) {
+        ensureCapacity(vehicleIndex + 1);
+        if (!dirty[vehicleIndex]) {
+            dirty[vehicleIndex] = true;
+            dirtyVehicles[dirtyCount++] = vehicleIndex;
+        }
+    }
+
+    private void update(VehicleRoute route, int vehicleIndex) {
+        double current = 0.;
+        Double routeCost = stateManager.getRouteState(route, InternalStates.COSTS, Double.class);
+        if (routeCost != null) {
+            current += routeCost;
+        }
+        current += route.getVehicle().getType().getVehicleCostParams().fix;
+
+        double previous = routeCosts[vehicleIndex];
+        routeCosts[vehicleIndex] = current;
+        if (!present[vehicleIndex]) {
+            present[vehicleIndex] = true;
+            ++presentCount;
+            if (minMax) {
+                heapPosition[vehicleIndex] = heapSize;
+                heap[heapSize++] = vehicleIndex;
+                siftUp(heapPosition[vehicleIndex]);
+            }
+        } else if (minMax) {
+            if (current > previous) {
+                siftUp(heapPosition[vehicleIndex]);
+            } else if (current < previous) {
+                siftDown(heapPosition[vehicleIndex]);
+            }
+        }
+    }
+
+    private void evictUnseen() {
+        for (int vehicleIndex = 0; vehicleIndex < present.length; ++vehicleIndex) {
+            if (present[vehicleIndex] && seen[vehicleIndex] != generation) {
+                evict(vehicleIndex);
+            }
+        }
+    }
+
+    private void evict(int vehicleIndex) {
+        present[vehicleIndex] = false;
+        --presentCount;
+        if (!minMax) {
+            return;
+        }
+        int position = heapPosition[vehicleIndex];
+        int last = heap[--heapSize];
+        heapPosition[vehicleIndex] = -1;
+        if (last != vehicleIndex) {
+            heap[position] = last;
+            heapPosition[last] = position;
+            siftUp(position);
+            siftDown(heapPosition[last]);
+        }
+    }
+
+    private void invalidate() {
+        Arrays.fill(present, false);
+        presentCount = 0;
+        Arrays.fill(heapPosition, -1);
+        heapSize = 0;
+        cached = null;
+    }
+
+    private void keepSnapshots(Collection<VehicleRoutingProblemSolution> solutions) {
+        Iterator<Map.Entry<VehicleRoutingProblemSolution, Snapshot>> it = snapshots.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<VehicleRoutingProblemSolution, Snapshot> entry = it.next();
+            if (!containsSame(solutions, entry.getKey())) {
+                freeSnapshots.add(entry.getValue());
+                it.remove();
+            }
+        }
+        if (cached != null && !snapshots.containsKey(cached) && containsSame(solutions, cached)) {
+            Snapshot snapshot = freeSnapshots.isEmpty() ? new Snapshot() : freeSnapshots.poll();
+            save(snapshot);
+            snapshots.put(cached, snapshot);
+        }
+    }
+
+    private static boolean containsSame(Collection<VehicleRoutingProblemSolution> solutions, VehicleRoutingProblemSolution solution) {
+        for (VehicleRoutingProblemSolution s : solutions) {
+            if (s == solution) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void save(Snapshot snapshot) {
+        int capacity = present.length;
+        if (snapshot.present == null || snapshot.present.length != capacity) {
+            snapshot.routeCosts = new double[capacity];
+            snapshot.present = new boolean[capacity];
+            snapshot.heap = minMax ? new int[capacity] : null;
+            snapshot.heapPosition = minMax ? new int[capacity] : null;
+        }
+        System.arraycopy(routeCosts, 0, snapshot.routeCosts, 0, capacity);
+        System.arraycopy(present, 0, snapshot.present, 0, capacity);
+        snapshot.presentCount = presentCount;
+        if (minMax) {
+            System.arraycopy(heap, 0, snapshot.heap, 0, heapSize);
+            System.arraycopy(heapPosition, 0, snapshot.heapPosition, 0, capacity);
+        }
+        snapshot.heapSize = heapSize;
+    }
+
+    private void restore(VehicleRoutingProblemSolution solution, Snapshot snapshot) {
+        int capacity = snapshot.present.length;
+        ensureCapacity(capacity);
+        System.arraycopy(snapshot.routeCosts, 0, routeCosts, 0, capacity);
+        System.arraycopy(snapshot.present, 0, present, 0, capacity);
+        Arrays.fill(present, capacity, present.length, false);
+        presentCount = snapshot.presentCount;
+        if (minMax) {
+            System.arraycopy(snapshot.heap, 0, heap, 0, snapshot.heapSize);
+            System.arraycopy(snapshot.heapPosition, 0, heapPosition, 0, capacity);
+            Arrays.fill(heapPosition, capacity, heapPosition.length, -1);
+        }
+        heapSize = snapshot.heapSize;
+        cached = solution;
+    }
+
+    private void siftUp(int position) {
+        int vehicleIndex = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (routeCosts[heap[parent]] >= routeCosts[vehicleIndex]) {
+                break;
+            }
+            heap[position] = heap[parent];
+            heapPosition[heap[position]] = position;
+            position = parent;
+        }
+        heap[position] = vehicleIndex;
+        heapPosition[vehicleIndex] = position;
+    }
+
+    private void siftDown(int position) {
+        int vehicleIndex = heap[position];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && routeCosts[heap[child + 1]] > routeCosts[heap[child]]) {
+                ++child;
+            }
+            if (routeCosts[heap[child]] <= routeCosts[vehicleIndex]) {
+                break;
+            }
+            heap[position] = heap[child];
+            heapPosition[heap[position]] = position;
+            position = child;
+        }
+        heap[position] = vehicleIndex;
+        heapPosition[vehicleIndex] = position;
+    }
+
+    private void allocate(int capacity) {
+        dirty = new boolean[capacity];
+        dirtyVehicles = new int[capacity];
+        seen = new int[capacity];
+        routeCosts = new double[capacity];
+        present = new boolean[capacity];
+        heap = new int[capacity];
+        heapPosition = new int[capacity];
+        Arrays.fill(heapPosition, -1);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= dirty.length) {
+            return;
+        }
+        int oldCapacity = dirty.length;
+        int newCapacity = Math.max(capacity, 2 * oldCapacity);
+        dirty = Arrays.copyOf(dirty, newCapacity);
+        dirtyVehicles = Arrays.copyOf(dirtyVehicles, newCapacity);
+        seen = Arrays.copyOf(seen, newCapacity);
+        routeCosts = Arrays.copyOf(routeCosts, newCapacity);
+        present = Arrays.copyOf(present, newCapacity);
+        heap = Arrays.copyOf(heap, newCapacity);
+        heapPosition = Arrays.copyOf(heapPosition, newCapacity);
+        Arrays.fill(heapPosition, oldCapacity, newCapacity, -1);
+    }
+}
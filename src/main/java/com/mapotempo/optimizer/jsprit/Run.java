@@ -23,24 +23,27 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import com.graphhopper.jsprit.analysis.toolbox.AlgorithmSearchProgressChartListener;
+import com.graphhopper.jsprit.core.algorithm.SearchStrategy;
 import com.graphhopper.jsprit.core.algorithm.VehicleRoutingAlgorithm;
+import com.graphhopper.jsprit.core.algorithm.acceptor.GreedyAcceptance;
 import com.graphhopper.jsprit.core.algorithm.listener.IterationEndsListener;
 import com.graphhopper.jsprit.core.algorithm.recreate.BreakScheduling;
-import com.graphhopper.jsprit.core.algorithm.state.InternalStates;
+import com.graphhopper.jsprit.core.algorithm.selector.SelectBest;
 import com.graphhopper.jsprit.core.algorithm.state.StateManager;
 import com.graphhopper.jsprit.core.algorithm.termination.TimeTermination;
 import com.graphhopper.jsprit.core.algorithm.termination.VariationCoefficientTermination;
 import com.graphhopper.jsprit.core.problem.Location;
 import com.graphhopper.jsprit.core.problem.VehicleRoutingProblem;
 import com.graphhopper.jsprit.core.problem.constraint.ConstraintManager;
+import com.graphhopper.jsprit.core.problem.constraint.HardActivityConstraint;
 import com.graphhopper.jsprit.core.problem.constraint.NoFirstANDSecondSkillConstraint;
 import com.graphhopper.jsprit.core.problem.cost.AbstractForwardVehicleRoutingTransportCosts;
 import com.graphhopper.jsprit.core.problem.cost.VehicleRoutingTransportCosts;
 import com.graphhopper.jsprit.core.problem.driver.Driver;
 import com.graphhopper.jsprit.core.problem.job.Job;
-import com.graphhopper.jsprit.core.problem.solution.SolutionCostCalculator;
 import com.graphhopper.jsprit.core.problem.solution.VehicleRoutingProblemSolution;
 import com.graphhopper.jsprit.core.problem.solution.route.VehicleRoute;
 import com.graphhopper.jsprit.core.problem.solution.route.activity.TourActivity;
@@ -58,6 +61,8 @@ import com.graphhopper.jsprit.io.problem.VrpXMLReader;
 import com.graphhopper.jsprit.io.problem.VrpXMLWriter;
 
 import com.mapotempo.optimizer.jsprit.CustomPrematureAlgorithmTermination.StrictIterationWithoutImprovementTermination;
+import com.mapotempo.optimizer.jsprit.CustomSearchStrategyModule.LocalSearchPolish;
+import com.mapotempo.optimizer.jsprit.CustomSolutionCostCalculator.IncrementalSolutionCostCalculator;
 
 import joptsimple.OptionException;
 import joptsimple.OptionParser;
@@ -71,6 +76,8 @@ public class Run {
 
 	final static Logger logger = LoggerFactory.getLogger(Run.class.getName());
 
+	final static int LOCAL_SEARCH_MAX_MOVES = 100;
+
 	private VehicleRoutingProblemSolution bestCurrentSolution = null;
 
 	public static void main(String[] args) throws IOException {
@@ -93,6 +100,8 @@ public class Run {
 		OptionSpec<Integer> optionThreads = parser.accepts("threads").withRequiredArg().ofType(Integer.class)
 				.defaultsTo(1);
 		parser.accepts("nearby");
+		parser.accepts("local_search");
+		OptionSpec<Double> optionLocalSearchWeight = parser.accepts("local_search_weight").withRequiredArg().ofType(Double.class);
 		parser.accepts("debug");
 		OptionSpec<String> optionDebugGraph = parser.accepts("debug-graph").withOptionalArg().ofType(String.class);
 		parser.accepts("help").forHelp();
@@ -123,49 +132,70 @@ public class Run {
 		Integer threads = options.valueOf(optionThreads);
 		boolean debug = options.has("debug");
 		boolean nearby = options.has("nearby");
+		boolean localSearch = options.has("local_search");
+		Double localSearchWeight = options.valueOf(optionLocalSearchWeight);
 		String debugGraphFile = options.valueOf(optionDebugGraph);
 
 		new Run(algorithmFile, solutionFile, timeMatrixFile, distanceMatrixFile, instanceFile, minMax, solveDuration, solveIterationWithoutImprovement, solveIterationWithoutVariation, solveCoefficientWithoutVariation, threads, debug, nearby,
-				debugGraphFile);
+				localSearch, localSearchWeight, debugGraphFile);
 	}
 
 	public Run(String algorithmFile, String solutionFile, String timeMatrixFile, String distanceMatrixFile,
 			String instanceFile, boolean minMax, Integer algorithmDuration, Integer algorithmNoImprovementIteration, Integer algorithmStableIteration, Double algorithmStableCoef, Integer threads, boolean debug, boolean nearby, String debugGraphFile) throws IOException {
+		this(algorithmFile, solutionFile, timeMatrixFile, distanceMatrixFile, instanceFile, minMax, algorithmDuration, algorithmNoImprovementIteration, algorithmStableIteration, algorithmStableCoef, threads, debug, nearby, false, null, debugGraphFile);
+	}
+
+	public Run(String algorithmFile, String solutionFile, String timeMatrixFile, String distanceMatrixFile,
+			String instanceFile, boolean minMax, Integer algorithmDuration, Integer algorithmNoImprovementIteration, Integer algorithmStableIteration, Double algorithmStableCoef, Integer threads, boolean debug, boolean nearby, boolean localSearch, Double localSearchWeight, String debugGraphFile) throws IOException {
 		VehicleRoutingTransportCostsMatrix.Builder costMatrixBuilder = VehicleRoutingTransportCostsMatrix.Builder
 				.newInstance(false);
+		float[][] timeMatrix = null;
+		float[][] distanceMatrix = null;
 		if (timeMatrixFile != null) {
-			readTimeFile(costMatrixBuilder, timeMatrixFile);
+			timeMatrix = readTimeFile(costMatrixBuilder, timeMatrixFile);
 		}
 		if (distanceMatrixFile != null) {
-			readDistanceFile(costMatrixBuilder, distanceMatrixFile);
+			distanceMatrix = readDistanceFile(costMatrixBuilder, distanceMatrixFile);
 		}
-		run(algorithmFile, instanceFile, costMatrixBuilder.build(), minMax, algorithmDuration, algorithmNoImprovementIteration, algorithmStableIteration, algorithmStableCoef, solutionFile, threads, debug, nearby, debugGraphFile);
+		run(algorithmFile, instanceFile, costMatrixBuilder.build(), timeMatrix, distanceMatrix, minMax, algorithmDuration, algorithmNoImprovementIteration, algorithmStableIteration, algorithmStableCoef, solutionFile, threads, debug, nearby, localSearch, localSearchWeight, debugGraphFile);
 	}
 
-	private void readTimeFile(VehicleRoutingTransportCostsMatrix.Builder costMatrixBuilder, String path)
+	private float[][] readTimeFile(VehicleRoutingTransportCostsMatrix.Builder costMatrixBuilder, String path)
 			throws IOException {
+		List<String> lines = Files.readAllLines(Paths.get(path));
+		float[][] matrix = new float[lines.size()][];
 		int n = 0;
-		for (String line : Files.readAllLines(Paths.get(path))) {
+		for (String line : lines) {
+			String[] fields = line.split(" ");
+			matrix[n] = new float[fields.length];
 			int nn = 0;
-			for (String f : line.split(" ")) {
-				costMatrixBuilder.addTransportTime(String.valueOf(n), String.valueOf(nn), Float.valueOf(f));
+			for (String f : fields) {
+				matrix[n][nn] = Float.valueOf(f);
+				costMatrixBuilder.addTransportTime(String.valueOf(n), String.valueOf(nn), matrix[n][nn]);
 				nn++;
 			}
 			n++;
 		}
+		return matrix;
 	}
 
-	private void readDistanceFile(VehicleRoutingTransportCostsMatrix.Builder costMatrixBuilder, String path)
+	private float[][] readDistanceFile(VehicleRoutingTransportCostsMatrix.Builder costMatrixBuilder, String path)
 			throws IOException {
+		List<String> lines = Files.readAllLines(Paths.get(path));
+		float[][] matrix = new float[lines.size()][];
 		int n = 0;
-		for (String line : Files.readAllLines(Paths.get(path))) {
+		for (String line : lines) {
+			String[] fields = line.split(" ");
+			matrix[n] = new float[fields.length];
 			int nn = 0;
-			for (String f : line.split(" ")) {
-				costMatrixBuilder.addTransportDistance(String.valueOf(n), String.valueOf(nn), Float.valueOf(f));
+			for (String f : fields) {
+				matrix[n][nn] = Float.valueOf(f);
+				costMatrixBuilder.addTransportDistance(String.valueOf(n), String.valueOf(nn), matrix[n][nn]);
 				nn++;
 			}
 			n++;
 		}
+		return matrix;
 	}
 
 	private String solutiontToString(VehicleRoutingProblemSolution solution) {
@@ -196,8 +226,8 @@ public class Run {
 		return "Nb delivery : " + i + "\n" + myRet;
 	}
 
-	private void run(String algorithmFile, String instanceFile, final VehicleRoutingTransportCostsMatrix costMatrix, boolean minMax,
-			Integer algorithmDuration, Integer algorithmNoImprovementIteration, Integer algorithmStableIteration, Double algorithmStableCoef, final String solutionFile, Integer threads, boolean debug, boolean nearby, String debugGraphFile) {
+	private void run(String algorithmFile, String instanceFile, final VehicleRoutingTransportCostsMatrix costMatrix, float[][] timeMatrix, float[][] distanceMatrix, boolean minMax,
+			Integer algorithmDuration, Integer algorithmNoImprovementIteration, Integer algorithmStableIteration, Double algorithmStableCoef, final String solutionFile, Integer threads, boolean debug, boolean nearby, final boolean localSearch, Double localSearchWeight, String debugGraphFile) {
 
 		VehicleRoutingProblem.Builder vrpBuilder = VehicleRoutingProblem.Builder.newInstance();
 		if(nearby) {
@@ -243,44 +273,31 @@ public class Run {
 				break;
 			}
 
-		SolutionCostCalculator solCost;
-		if(minMax) {
-			solCost = new SolutionCostCalculator() {
-				public double getCosts(VehicleRoutingProblemSolution solution) {
-					double c = 0;
-					for (VehicleRoute r : solution.getRoutes()) {
-						double current = 0.;
-						current += stateManager.getRouteState(r, InternalStates.COSTS, Double.class);
-						current += r.getVehicle().getType().getVehicleCostParams().fix;
-						c = Math.max(c, current);
-					}
-					c += solution.getUnassignedJobs().size() * (1 + c) * 0.5;
-					return c;
-				}
-			};
-		} else {
-			solCost = new SolutionCostCalculator() {
-				public double getCosts(VehicleRoutingProblemSolution solution) {
-					double c = 0;
-					for (VehicleRoute r : solution.getRoutes()) {
-						c += stateManager.getRouteState(r, InternalStates.COSTS, Double.class);
-						c += r.getVehicle().getType().getVehicleCostParams().fix;
-					}
-					c += solution.getUnassignedJobs().size() * (1 + c) * 0.5;
-					return c;
-				}
-			};
-		}
+		final IncrementalSolutionCostCalculator solCost = new IncrementalSolutionCostCalculator(problem, stateManager, minMax);
 		AlgorithmConfig algo = new AlgorithmConfig();
 		AlgorithmConfigXmlReader reader = new AlgorithmConfigXmlReader(algo);
 		reader.read(algorithmFile);
 		VehicleRoutingAlgorithm algorithm = VehicleRoutingAlgorithms.readAndCreateAlgorithm(problem, algo, threads, solCost, stateManager, constraintManager, true);
+		algorithm.addListener(solCost);
+
+		// No order constraint is registered on the constraint manager yet
+		final LocalSearchPolish polish = new LocalSearchPolish(stateManager, constraintManager, new ArrayList<HardActivityConstraint>(), timeMatrix, distanceMatrix, minMax, LOCAL_SEARCH_MAX_MOVES);
+		polish.addModuleListener(solCost);
+		if(localSearchWeight != null) {
+			SearchStrategy localSearchStrategy = new SearchStrategy(polish.getName(), new SelectBest(), new GreedyAcceptance(algo.getXMLConfiguration().getInt("strategy.memory", 1)), solCost);
+			localSearchStrategy.addModule(polish);
+			algorithm.getSearchStrategyManager().addStrategy(localSearchStrategy, localSearchWeight);
+		}
 
 		IterationEndsListener displayBestScore = new IterationEndsListener() {
 			@Override
 			public void informIterationEnds(int i, VehicleRoutingProblem problem, Collection<VehicleRoutingProblemSolution> solutions) {
 				if (bestCurrentSolution == null || Solutions.bestOf(solutions).getCost() < bestCurrentSolution.getCost()){
 					bestCurrentSolution = Solutions.bestOf(solutions);
+					if (localSearch) {
+						polish.runAndGetSolution(bestCurrentSolution);
+						bestCurrentSolution.setCost(solCost.getCosts(bestCurrentSolution));
+					}
 					Collection<VehicleRoutingProblemSolution> bestEver = new ArrayList<VehicleRoutingProblemSolution>();
 					bestEver.add(bestCurrentSolution);
 					new VrpXMLWriter(problem, bestEver, true).write(solutionFile);
@@ -292,7 +309,9 @@ public class Run {
 		algorithm.addListener(new BreakScheduling(problem, stateManager, constraintManager));
 
 		if(algorithmDuration != null) {
-			TimeTermination prematureTermination = new TimeTermination((long)algorithmDuration);
+			// With the local search, a tenth of the time limit is kept for the final polish
+			long searchDuration = localSearch ? algorithmDuration - algorithmDuration / 10 : algorithmDuration;
+			TimeTermination prematureTermination = new TimeTermination(searchDuration);
 			algorithm.addTerminationCriterion(prematureTermination);
 			algorithm.addListener(prematureTermination);
 		}
@@ -310,8 +329,18 @@ public class Run {
 			algorithm.addListener(new AlgorithmSearchProgressChartListener(debugGraphFile));
 		}
 
+		long searchStart = System.currentTimeMillis();
+		if(localSearch && algorithmDuration != null)
+			polish.setDeadline(searchStart + algorithmDuration - algorithmDuration / 10);
+
 		Collection<VehicleRoutingProblemSolution> solutions = algorithm.searchSolutions();
 		VehicleRoutingProblemSolution bestSolution = Solutions.bestOf(solutions);
+		if (localSearch) {
+			if(algorithmDuration != null)
+				polish.setDeadline(searchStart + algorithmDuration);
+			polish.runAndGetSolution(bestSolution);
+			bestSolution.setCost(solCost.getCosts(bestSolution));
+		}
 
 		if (debug) {
 			System.out.println(solutiontToString(bestSolution));
@@ -0,0 +1,193 @@
+/***
+ * Copyright © Mapotempo, 2016
+ *
+ * This file is part of Mapotempo.
+ *
+ * Mapotempo is free software. You can redistribute it and/or
+ * modify since you respect the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Mapotempo is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the Licenses for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Mapotempo. If not, see:
+ * <http://www.gnu.org/licenses/agpl.html>
+***/
+package com.mapotempo.optimizer.jsprit.CustomSearchStrategyModule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.graphhopper.jsprit.core.algorithm.state.InternalStates;
+import com.graphhopper.jsprit.core.algorithm.state.StateManager;
+import com.graphhopper.jsprit.core.problem.Capacity;
+import com.graphhopper.jsprit.core.problem.Location;
+import com.graphhopper.jsprit.core.problem.VehicleRoutingProblem;
+import com.graphhopper.jsprit.core.problem.constraint.ConstraintManager;
+import com.graphhopper.jsprit.core.problem.constraint.HardActivityConstraint;
+import com.graphhopper.jsprit.core.problem.job.Service;
+import com.graphhopper.jsprit.core.problem.solution.VehicleRoutingProblemSolution;
+import com.graphhopper.jsprit.core.problem.solution.route.VehicleRoute;
+import com.graphhopper.jsprit.core.problem.solution.route.activity.TimeWindow;
+import com.graphhopper.jsprit.core.problem.solution.route.activity.TourActivity;
+import com.graphhopper.jsprit.core.problem.solution.route.activity.TourActivity.JobActivity;
+import com.graphhopper.jsprit.core.problem.vehicle.Vehicle;
+import com.graphhopper.jsprit.core.problem.vehicle.VehicleImpl;
+import com.graphhopper.jsprit.core.problem.vehicle.VehicleType;
+import com.graphhopper.jsprit.core.problem.vehicle.VehicleTypeImpl;
+import com.graphhopper.jsprit.core.util.VehicleRoutingTransportCostsMatrix;
+import com.graphhopper.jsprit.io.algorithm.AlgorithmConfig;
+import com.graphhopper.jsprit.io.algorithm.AlgorithmConfigXmlReader;
+import com.graphhopper.jsprit.io.algorithm.VehicleRoutingAlgorithms;
+
+import com.mapotempo.optimizer.jsprit.CustomSolutionCostCalculator.IncrementalSolutionCostCalculator;
+
+public class LocalSearchPolishTest {
+
+    // Positions on a line of the matrix indices, 0 being the depot
+    private static final int[] POSITIONS = { 0, 1, 2, 3, 4, 10, 9, 11 };
+
+    private static final double DELTA = 1e-6;
+
+    private float[][] matrix;
+
+    private Service[] services;
+
+    private VehicleRoutingProblem problem;
+
+    private StateManager stateManager;
+
+    private IncrementalSolutionCostCalculator solCost;
+
+    private LocalSearchPolish polish;
+
+    @Test
+    public void testPolishRemovesCrossingAndMisplacedStop() {
+        setUp(2, 5, POSITIONS.length - 1);
+        List<Vehicle> vehicles = new ArrayList<Vehicle>(problem.getVehicles());
+        // Crossing 2 -> 1 and stop 5, near the second route, misplaced in the first one
+        VehicleRoute route0 = route(vehicles.get(0), 2, 1, 3, 5, 4);
+        VehicleRoute route1 = route(vehicles.get(1), 6, 7);
+        VehicleRoutingProblemSolution solution = solution(route0, route1);
+        assertFeasible(solution);
+        double initialCost = solCost.getCosts(solution);
+
+        polish.runAndGetSolution(solution);
+        double polishedCost = solCost.getCosts(solution);
+
+        assertTrue(polishedCost < initialCost);
+        // 0 1 2 3 4 0 and 0 9 10 11 0 cost 30, moving stop 4 into the second route is even cheaper
+        assertTrue(polishedCost <= 30. + DELTA);
+        assertFalse(route0.getTourActivities().servesJob(services[5]));
+        assertTrue(route1.getTourActivities().servesJob(services[5]));
+        assertFeasible(solution);
+        int served = 0;
+        for (VehicleRoute route : solution.getRoutes()) {
+            served += route.getActivities().size();
+        }
+        assertEquals(POSITIONS.length - 1, served);
+    }
+
+    @Test
+    public void testPolishReordersRouteLoadedToCapacity() {
+        setUp(1, 4, 4);
+        Vehicle vehicle = problem.getVehicles().iterator().next();
+        // Crossing 3 -> 2, the single route leaves no other move than reordering it
+        VehicleRoute route = route(vehicle, 1, 3, 2, 4);
+        VehicleRoutingProblemSolution solution = solution(route);
+        assertFeasible(solution);
+        Capacity load = stateManager.getRouteState(route, InternalStates.LOAD_AT_END, Capacity.class);
+        assertEquals(4, load.get(0));
+        assertEquals(10., solCost.getCosts(solution), DELTA);
+
+        polish.runAndGetSolution(solution);
+
+        assertEquals(8., solCost.getCosts(solution), DELTA);
+        List<TourActivity> activities = route.getActivities();
+        assertEquals(4, activities.size());
+        for (int k = 0; k < 4; ++k) {
+            assertEquals(services[k + 1], ((JobActivity) activities.get(k)).getJob());
+        }
+        assertFeasible(solution);
+    }
+
+    private void setUp(int vehicleCount, int capacity, int serviceCount) {
+        matrix = new float[POSITIONS.length][POSITIONS.length];
+        VehicleRoutingTransportCostsMatrix.Builder costMatrixBuilder = VehicleRoutingTransportCostsMatrix.Builder.newInstance(false);
+        for (int i = 0; i < POSITIONS.length; ++i) {
+            for (int j = 0; j < POSITIONS.length; ++j) {
+                matrix[i][j] = Math.abs(POSITIONS[i] - POSITIONS[j]);
+                costMatrixBuilder.addTransportTime(String.valueOf(i), String.valueOf(j), matrix[i][j]);
+                costMatrixBuilder.addTransportDistance(String.valueOf(i), String.valueOf(j), matrix[i][j]);
+            }
+        }
+
+        VehicleRoutingProblem.Builder vrpBuilder = VehicleRoutingProblem.Builder.newInstance();
+        vrpBuilder.setFleetSize(VehicleRoutingProblem.FleetSize.FINITE);
+        vrpBuilder.setRoutingCost(costMatrixBuilder.build());
+        VehicleType type = VehicleTypeImpl.Builder.newInstance("type").addCapacityDimension(0, capacity).setCostPerDistance(1).build();
+        for (int v = 0; v < vehicleCount; ++v) {
+            vrpBuilder.addVehicle(VehicleImpl.Builder.newInstance("vehicle_" + v).setStartLocation(location(0)).setType(type).build());
+        }
+        services = new Service[serviceCount + 1];
+        for (int i = 1; i <= serviceCount; ++i) {
+            services[i] = Service.Builder.newInstance("service_" + i).addSizeDimension(0, 1).setLocation(location(i))
+                    .setTimeWindow(TimeWindow.newInstance(0, 100)).build();
+            vrpBuilder.addJob(services[i]);
+        }
+        problem = vrpBuilder.build();
+
+        stateManager = new StateManager(problem);
+        ConstraintManager constraintManager = new ConstraintManager(problem, stateManager);
+        solCost = new IncrementalSolutionCostCalculator(problem, stateManager, false);
+        AlgorithmConfig algo = new AlgorithmConfig();
+        new AlgorithmConfigXmlReader(algo).read("algorithmConfig.xml");
+        // Registers the core state updaters and constraints, as in Run
+        VehicleRoutingAlgorithms.readAndCreateAlgorithm(problem, algo, 1, solCost, stateManager, constraintManager, true);
+
+        polish = new LocalSearchPolish(stateManager, constraintManager, new ArrayList<HardActivityConstraint>(), matrix, matrix, false, 100);
+        polish.addModuleListener(solCost);
+    }
+
+    private VehicleRoute route(Vehicle vehicle, int... serviceIndices) {
+        VehicleRoute.Builder builder = VehicleRoute.Builder.newInstance(vehicle).setJobActivityFactory(problem.getJobActivityFactory());
+        for (int i : serviceIndices) {
+            builder.addService(services[i]);
+        }
+        return builder.build();
+    }
+
+    private VehicleRoutingProblemSolution solution(VehicleRoute... routes) {
+        Collection<VehicleRoute> solutionRoutes = new ArrayList<VehicleRoute>();
+        for (VehicleRoute route : routes) {
+            stateManager.reCalculateStates(route);
+            solutionRoutes.add(route);
+        }
+        return new VehicleRoutingProblemSolution(solutionRoutes, 0.);
+    }
+
+    private void assertFeasible(VehicleRoutingProblemSolution solution) {
+        for (VehicleRoute route : solution.getRoutes()) {
+            Capacity capacity = route.getVehicle().getType().getCapacityDimensions();
+            for (TourActivity act : route.getActivities()) {
+                assertTrue(act.getArrTime() <= act.getTheoreticalLatestOperationStartTime());
+                assertTrue(stateManager.getActivityState(act, InternalStates.LOAD, Capacity.class).isLessOrEqual(capacity));
+            }
+            assertTrue(route.getEnd().getArrTime() <= route.getVehicle().getLatestArrival());
+        }
+    }
+
+    private static Location location(int index) {
+        return Location.Builder.newInstance().setId(String.valueOf(index)).setIndex(index).build();
+    }
+}
@@ -0,0 +1,125 @@
+/***
+ * Copyright © Mapotempo, 2016
+ *
+ * This file is part of Mapotempo.
+ *
+ * Mapotempo is free software. You can redistribute it and/or
+ * modify since you respect the terms of the GNU Affero General
+ * Public License as published by the Free Software Foundation,
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * Mapotempo is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the Licenses for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Mapotempo. If not, see:
+ * <http://www.gnu.org/licenses/agpl.html>
+***/
+package com.mapotempo.optimizer.jsprit.CustomSolutionCostCalculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.graphhopper.jsprit.core.algorithm.VehicleRoutingAlgorithm;
+import com.graphhopper.jsprit.core.algorithm.state.InternalStates;
+import com.graphhopper.jsprit.core.algorithm.state.StateManager;
+import com.graphhopper.jsprit.core.problem.Location;
+import com.graphhopper.jsprit.core.problem.VehicleRoutingProblem;
+import com.graphhopper.jsprit.core.problem.constraint.ConstraintManager;
+import com.graphhopper.jsprit.core.problem.job.Service;
+import com.graphhopper.jsprit.core.problem.solution.SolutionCostCalculator;
+import com.graphhopper.jsprit.core.problem.solution.VehicleRoutingProblemSolution;
+import com.graphhopper.jsprit.core.problem.solution.route.VehicleRoute;
+import com.graphhopper.jsprit.core.problem.vehicle.VehicleImpl;
+import com.graphhopper.jsprit.core.problem.vehicle.VehicleType;
+import com.graphhopper.jsprit.core.problem.vehicle.VehicleTypeImpl;
+import com.graphhopper.jsprit.io.algorithm.AlgorithmConfig;
+import com.graphhopper.jsprit.io.algorithm.AlgorithmConfigXmlReader;
+import com.graphhopper.jsprit.io.algorithm.VehicleRoutingAlgorithms;
+
+public class IncrementalSolutionCostCalculatorTest {
+
+    private static final double DELTA = 1e-6;
+
+    @Test
+    public void testSumMatchesNaiveCosts() {
+        checkAgainstNaiveCosts(false);
+    }
+
+    @Test
+    public void testMinMaxMatchesNaiveCosts() {
+        checkAgainstNaiveCosts(true);
+    }
+
+    private void checkAgainstNaiveCosts(final boolean minMax) {
+        VehicleRoutingProblem problem = createProblem();
+        final StateManager stateManager = new StateManager(problem);
+        ConstraintManager constraintManager = new ConstraintManager(problem, stateManager);
+
+        // Capacity of 1 forces the caches to grow with the vehicle indices
+        final IncrementalSolutionCostCalculator incremental = new IncrementalSolutionCostCalculator(problem, stateManager, minMax, 1);
+        final List<VehicleRoutingProblemSolution> evaluated = new ArrayList<VehicleRoutingProblemSolution>();
+        SolutionCostCalculator checking = new SolutionCostCalculator() {
+            public double getCosts(VehicleRoutingProblemSolution solution) {
+                double c = incremental.getCosts(solution);
+                assertEquals(naiveCosts(stateManager, solution, minMax), c, DELTA);
+                evaluated.add(solution);
+                return c;
+            }
+        };
+
+        AlgorithmConfig algo = new AlgorithmConfig();
+        new AlgorithmConfigXmlReader(algo).read("algorithmConfig.xml");
+        VehicleRoutingAlgorithm algorithm = VehicleRoutingAlgorithms.readAndCreateAlgorithm(problem, algo, 1, checking, stateManager, constraintManager, true);
+        algorithm.addListener(incremental);
+        algorithm.setMaxIterations(300);
+        algorithm.searchSolutions();
+        assertTrue(evaluated.size() > 1);
+
+        // Evaluate older solutions again, restored from their snapshot when still in memory, recomputed otherwise
+        for (int i = evaluated.size() - 1; i >= 0; --i) {
+            VehicleRoutingProblemSolution solution = evaluated.get(i);
+            for (VehicleRoute route : solution.getRoutes()) {
+                stateManager.reCalculateStates(route);
+            }
+            assertEquals(naiveCosts(stateManager, solution, minMax), incremental.getCosts(solution), DELTA);
+        }
+    }
+
+    private static double naiveCosts(StateManager stateManager, VehicleRoutingProblemSolution solution, boolean minMax) {
+        double c = 0;
+        for (VehicleRoute r : solution.getRoutes()) {
+            double current = 0.;
+            Double routeCost = stateManager.getRouteState(r, InternalStates.COSTS, Double.class);
+            if (routeCost != null) {
+                current += routeCost;
+            }
+            current += r.getVehicle().getType().getVehicleCostParams().fix;
+            c = minMax ? Math.max(c, current) : c + current;
+        }
+        c += solution.getUnassignedJobs().size() * (1 + c) * 0.5;
+        return c;
+    }
+
+    private static VehicleRoutingProblem createProblem() {
+        VehicleRoutingProblem.Builder vrpBuilder = VehicleRoutingProblem.Builder.newInstance();
+        vrpBuilder.setFleetSize(VehicleRoutingProblem.FleetSize.FINITE);
+        for (int v = 0; v < 8; ++v) {
+            VehicleType type = VehicleTypeImpl.Builder.newInstance("type_" + v).addCapacityDimension(0, 3)
+                    .setCostPerDistance(1).setFixedCost(5 * v).build();
+            vrpBuilder.addVehicle(VehicleImpl.Builder.newInstance("vehicle_" + v)
+                    .setStartLocation(Location.newInstance(10 * (v % 3), 10 * (v / 3))).setType(type).build());
+        }
+        for (int i = 0; i < 15; ++i) {
+            vrpBuilder.addJob(Service.Builder.newInstance("service_" + i).addSizeDimension(0, 1)
+                    .setLocation(Location.newInstance((7 * i) % 23, (11 * i) % 19)).build());
+        }
+        return vrpBuilder.build();
+    }
+}
@@ -50,4 +50,20 @@ public class RunTest {
 		String solution = File.createTempFile("solution", "").getAbsolutePath();
 		new Run("algorithmConfig.xml", solution, matrix, null, instance, false, 100, null, null, null, 1, false, true, null);
 	}
+
+	@Test
+	public void testRunMinMax() throws IOException {
+		String matrix = this.getClass().getClassLoader().getResource("time-2.matrix").getPath();
+		String instance = this.getClass().getClassLoader().getResource("v1s2.xml").getPath();
+		String solution = File.createTempFile("solution", "").getAbsolutePath();
+		new Run("algorithmConfig.xml", solution, matrix, null, instance, true, 100, null, null, null, 1, false, true, null);
+	}
+
+	@Test
+	public void testRunLocalSearch() throws IOException {
+		String matrix = this.getClass().getClassLoader().getResource("time-2.matrix").getPath();
+		String instance = this.getClass().getClassLoader().getResource("v1s2.xml").getPath();
+		String solution = File.createTempFile("solution", "").getAbsolutePath();
+		new Run("algorithmConfig.xml", solution, matrix, null, instance, false, 100, null, null, null, 1, false, true, true, 0.1, null);
+	}
 }